@@ -4,4 +4,5 @@ public class Config
 {
   public DataSource[] dataSources;
   public Report[] reports;
+  public Resource[] resources;
 }
@@ -0,0 +1,84 @@
+package org.realityforge.sqlserver.ssrs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent latency histogram using the log-linear bucketing scheme of HdrHistogram.
+ * Values are recorded in microseconds with three significant digits of precision up to one hour.
+ */
+final class LatencyHistogram
+{
+  private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 10;
+  private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+  private static final int SUB_BUCKET_MASK = ( SUB_BUCKET_HALF_COUNT << 1 ) - 1;
+  private static final long HIGHEST_TRACKABLE_VALUE = 60L * 60L * 1000L * 1000L;
+  private final AtomicLongArray _counts = new AtomicLongArray( countsIndex( HIGHEST_TRACKABLE_VALUE ) + 1 );
+  private final AtomicLong _totalCount = new AtomicLong();
+  private final AtomicLong _maxValue = new AtomicLong();
+
+  /**
+   * Record a latency in microseconds. Values beyond one hour are recorded as one hour.
+   */
+  void record( final long value )
+  {
+    final long clamped = Math.min( Math.max( value, 0 ), HIGHEST_TRACKABLE_VALUE );
+    _counts.incrementAndGet( countsIndex( clamped ) );
+    _totalCount.incrementAndGet();
+    _maxValue.accumulateAndGet( clamped, Math::max );
+  }
+
+  long getTotalCount()
+  {
+    return _totalCount.get();
+  }
+
+  long getMaxValue()
+  {
+    return _maxValue.get();
+  }
+
+  /**
+   * Return the value at or below which the specified percentage of recorded values fall.
+   * The value is reported as the highest value equivalent to the bucket in which it was recorded.
+   */
+  long getValueAtPercentile( final double percentile )
+  {
+    final long totalCount = _totalCount.get();
+    if ( 0 == totalCount )
+    {
+      return 0;
+    }
+    final long target = Math.max( 1, (long) Math.ceil( ( Math.min( percentile, 100D ) / 100D ) * totalCount ) );
+    long count = 0;
+    for ( int i = 0; i < _counts.length(); i++ )
+    {
+      count += _counts.get( i );
+      if ( count >= target )
+      {
+        return Math.min( highestEquivalentValue( i ), getMaxValue() );
+      }
+    }
+    return getMaxValue();
+  }
+
+  private static int countsIndex( final long value )
+  {
+    final int bucketIndex =
+      63 - Long.numberOfLeadingZeros( value | SUB_BUCKET_MASK ) - SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+    final int subBucketIndex = (int) ( value >>> bucketIndex );
+    return ( ( bucketIndex + 1 ) << SUB_BUCKET_HALF_COUNT_MAGNITUDE ) + ( subBucketIndex - SUB_BUCKET_HALF_COUNT );
+  }
+
+  private static long highestEquivalentValue( final int index )
+  {
+    int bucketIndex = ( index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE ) - 1;
+    int subBucketIndex = ( index & ( SUB_BUCKET_HALF_COUNT - 1 ) ) + SUB_BUCKET_HALF_COUNT;
+    if ( bucketIndex < 0 )
+    {
+      subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+      bucketIndex = 0;
+    }
+    return ( ( (long) subBucketIndex ) << bucketIndex ) + ( 1L << bucketIndex ) - 1;
+  }
+}
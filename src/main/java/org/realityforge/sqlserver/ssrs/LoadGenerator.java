@@ -0,0 +1,399 @@
+package org.realityforge.sqlserver.ssrs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+
+/**
+ * Replays a weighted mix of read-only catalog operations against the report server at a fixed rate.
+ *
+ * <p>Requests are issued on an open model: each request is scheduled at its intended start time
+ * regardless of whether earlier requests have completed and its latency is measured from that intended
+ * start time. Time spent queued behind slow requests is therefore included in the recorded latency
+ * rather than silently omitted. Requests that have not completed when the test is abandoned are
+ * recorded as errors with the latency observed at that time.</p>
+ *
+ * <p>Requests are dispatched to a thread pool that starts additional threads whenever every thread is
+ * busy, so the number of requests in flight is not capped by the client. The achieved request rate is
+ * reported and a warning is issued when requests could not be dispatched on schedule, in which case
+ * the results do not describe the target rate.</p>
+ */
+final class LoadGenerator
+{
+  enum Operation
+  {
+    list_children, get_item_type, get_report_definition, get_properties
+  }
+
+  private static final long ABANDON_TIMEOUT_MINUTES = 5;
+  private static final double[] PERCENTILES = new double[]{ 50, 90, 99, 99.9, 99.99 };
+  @Nonnull
+  private final SSRS _ssrs;
+  @Nonnull
+  private final Map<Operation, Integer> _mix;
+  private final double _rate;
+  private final long _durationSeconds;
+  private final int _threads;
+  private final long _interval;
+  @Nonnull
+  private final List<String> _folders;
+  @Nonnull
+  private final List<String> _reports;
+  @Nonnull
+  private final List<String> _items;
+  @Nonnull
+  private final Map<Operation, LatencyHistogram> _histograms = new EnumMap<>( Operation.class );
+  @Nonnull
+  private final Map<Operation, AtomicLong> _errors = new EnumMap<>( Operation.class );
+  @Nonnull
+  private final Map<Operation, AtomicLong> _abandoned = new EnumMap<>( Operation.class );
+  @Nonnull
+  private final Set<Request> _outstanding = ConcurrentHashMap.newKeySet();
+  private final AtomicLong _completed = new AtomicLong();
+  @Nonnull
+  private final LatencyHistogram _dispatchDelays = new LatencyHistogram();
+  private long _dispatched;
+  private long _dispatchNanos;
+  private long _elapsedNanos;
+
+  LoadGenerator( @Nonnull final SSRS ssrs,
+                 @Nonnull final Config config,
+                 @Nonnull final Map<Operation, Integer> mix,
+                 final double rate,
+                 final long durationSeconds,
+                 final int threads )
+  {
+    _ssrs = ssrs;
+    _mix = mix;
+    _rate = rate;
+    _durationSeconds = durationSeconds;
+    _threads = threads;
+    // Clamp so that extreme rates can not produce a zero interval and a schedule that never ends
+    _interval = Math.max( 1, (long) ( TimeUnit.SECONDS.toNanos( 1 ) / rate ) );
+    final Report[] reports = null != config.reports ? config.reports : new Report[ 0 ];
+    final DataSource[] dataSources = null != config.dataSources ? config.dataSources : new DataSource[ 0 ];
+    _reports = Stream.of( reports ).map( r -> r.name ).collect( Collectors.toList() );
+    _items = new ArrayList<>( _reports );
+    Stream.of( dataSources ).map( d -> d.name ).forEach( _items::add );
+    _folders =
+      Stream
+        .concat( Stream.of( "" ), _items.stream().map( n -> n.replaceAll( "/?[^/]*$", "" ) ) )
+        .distinct()
+        .collect( Collectors.toList() );
+    for ( final Operation operation : Operation.values() )
+    {
+      _histograms.put( operation, new LatencyHistogram() );
+      _errors.put( operation, new AtomicLong() );
+      _abandoned.put( operation, new AtomicLong() );
+    }
+  }
+
+  /**
+   * Parse a mix specification of the form "list_children:40,get_item_type:30".
+   *
+   * @throws IllegalArgumentException if the specification is malformed.
+   */
+  @Nonnull
+  static Map<Operation, Integer> parseMix( @Nonnull final String spec )
+  {
+    final Map<Operation, Integer> mix = new EnumMap<>( Operation.class );
+    for ( final String entry : spec.split( "," ) )
+    {
+      final String[] parts = entry.trim().split( ":" );
+      if ( 2 != parts.length )
+      {
+        throw new IllegalArgumentException( "Bad mix entry '" + entry + "'" );
+      }
+      final int weight = Integer.parseInt( parts[ 1 ].trim() );
+      if ( weight < 0 )
+      {
+        throw new IllegalArgumentException( "Bad weight in mix entry '" + entry + "'" );
+      }
+      mix.put( Operation.valueOf( parts[ 0 ].trim() ), weight );
+    }
+    if ( 0 == mix.values().stream().mapToInt( Integer::intValue ).sum() )
+    {
+      throw new IllegalArgumentException( "Mix must specify at least one operation with a positive weight" );
+    }
+    return mix;
+  }
+
+  /**
+   * Issue requests for the configured duration and wait for the outstanding requests to complete.
+   */
+  void run()
+    throws InterruptedException
+  {
+    final List<Operation> schedule = buildSchedule();
+    // Grow beyond the core threads rather than queue so requests are never held back by the client
+    final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor( _threads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>() );
+    executor.prestartAllCoreThreads();
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.SECONDS.toNanos( _durationSeconds );
+    try
+    {
+      for ( long i = 0; ; i++ )
+      {
+        final long intendedStart = start + i * _interval;
+        if ( intendedStart - end >= 0 )
+        {
+          break;
+        }
+        long delay;
+        while ( ( delay = intendedStart - System.nanoTime() ) > 0 )
+        {
+          LockSupport.parkNanos( delay );
+        }
+        final Operation operation = schedule.get( ThreadLocalRandom.current().nextInt( schedule.size() ) );
+        final Request request = new Request( operation, intendedStart );
+        _outstanding.add( request );
+        executor.execute( () -> perform( request ) );
+        _dispatched++;
+      }
+      _dispatchNanos = System.nanoTime() - start;
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+    if ( !executor.awaitTermination( ABANDON_TIMEOUT_MINUTES, TimeUnit.MINUTES ) )
+    {
+      // Abandon before interrupting so interrupted requests are not recorded as ordinary errors
+      final long abandoned = abandonOutstanding();
+      executor.shutdownNow();
+      SSRS.warning( abandoned + " load test requests still outstanding after " + ABANDON_TIMEOUT_MINUTES +
+                    " minutes were abandoned and recorded as errors" );
+    }
+    _elapsedNanos = System.nanoTime() - start;
+    if ( !isOnSchedule() )
+    {
+      SSRS.warning( describeScheduleMiss() );
+    }
+  }
+
+  /**
+   * Return true if 99% of requests started within one schedule interval of their intended start time.
+   */
+  private boolean isOnSchedule()
+  {
+    return TimeUnit.MICROSECONDS.toNanos( _dispatchDelays.getValueAtPercentile( 99 ) ) <= _interval;
+  }
+
+  @Nonnull
+  private String describeScheduleMiss()
+  {
+    return String.format( Locale.ROOT,
+                          "Requests were not dispatched on schedule for the target rate of %.1f/s. The p99 " +
+                          "delay before dispatch of %.3fms exceeds the schedule interval of %.3fms so " +
+                          "latencies include client side delays.",
+                          _rate,
+                          _dispatchDelays.getValueAtPercentile( 99 ) / 1000D,
+                          _interval / 1000000D );
+  }
+
+  /**
+   * Record every request that has not completed as an error with the latency observed so far.
+   *
+   * @return the number of requests abandoned.
+   */
+  private long abandonOutstanding()
+  {
+    final long now = System.nanoTime();
+    long count = 0;
+    for ( final Request request : _outstanding )
+    {
+      if ( request.complete() )
+      {
+        _histograms.get( request._operation ).record( TimeUnit.NANOSECONDS.toMicros( now - request._intendedStart ) );
+        _errors.get( request._operation ).incrementAndGet();
+        _abandoned.get( request._operation ).incrementAndGet();
+        count++;
+      }
+    }
+    _outstanding.clear();
+    return count;
+  }
+
+  /**
+   * Return a summary of the latency percentiles, in milliseconds, for each operation.
+   */
+  @Nonnull
+  String describeResults()
+  {
+    final String lineSeparator = System.getProperty( "line.separator" );
+    final StringBuilder sb = new StringBuilder();
+    sb.append( String.format( Locale.ROOT, "%-22s %8s %7s %9s", "Operation", "Count", "Errors", "Abandoned" ) );
+    for ( final double percentile : PERCENTILES )
+    {
+      sb.append( String.format( Locale.ROOT, " %9s", "p" + formatPercentile( percentile ) ) );
+    }
+    sb.append( String.format( Locale.ROOT, " %9s", "max" ) );
+    sb.append( lineSeparator );
+    for ( final Operation operation : Operation.values() )
+    {
+      if ( !_mix.containsKey( operation ) )
+      {
+        continue;
+      }
+      final LatencyHistogram histogram = _histograms.get( operation );
+      sb.append( String.format( Locale.ROOT,
+                                "%-22s %8d %7d %9d",
+                                operation,
+                                histogram.getTotalCount(),
+                                _errors.get( operation ).get(),
+                                _abandoned.get( operation ).get() ) );
+      for ( final double percentile : PERCENTILES )
+      {
+        sb.append( String.format( Locale.ROOT, " %9.3f", histogram.getValueAtPercentile( percentile ) / 1000D ) );
+      }
+      sb.append( String.format( Locale.ROOT, " %9.3f", histogram.getMaxValue() / 1000D ) );
+      sb.append( lineSeparator );
+    }
+    final long completed = _completed.get();
+    sb.append( String.format( Locale.ROOT,
+                              "Target rate %.1f/s for %ds. Dispatched %d requests at %.1f/s. " +
+                              "Completed %d requests in %.3fs at %.1f/s.",
+                              _rate,
+                              _durationSeconds,
+                              _dispatched,
+                              perSecond( _dispatched, _dispatchNanos ),
+                              completed,
+                              _elapsedNanos / 1000000000D,
+                              perSecond( completed, _elapsedNanos ) ) );
+    sb.append( lineSeparator );
+    sb.append( String.format( Locale.ROOT,
+                              "Delay before dispatch p99 %.3fms, max %.3fms.",
+                              _dispatchDelays.getValueAtPercentile( 99 ) / 1000D,
+                              _dispatchDelays.getMaxValue() / 1000D ) );
+    if ( !isOnSchedule() )
+    {
+      sb.append( lineSeparator );
+      sb.append( "WARNING: " ).append( describeScheduleMiss() );
+    }
+    return sb.toString();
+  }
+
+  private static double perSecond( final long count, final long nanos )
+  {
+    return 0 == nanos ? 0 : count * 1000000000D / nanos;
+  }
+
+  @Nonnull
+  private static String formatPercentile( final double percentile )
+  {
+    return percentile == Math.rint( percentile ) ? String.valueOf( (long) percentile ) : String.valueOf( percentile );
+  }
+
+  @Nonnull
+  private List<Operation> buildSchedule()
+  {
+    final List<Operation> schedule = new ArrayList<>();
+    for ( final Map.Entry<Operation, Integer> entry : _mix.entrySet() )
+    {
+      if ( entry.getValue() > 0 && getTargets( entry.getKey() ).isEmpty() )
+      {
+        throw new IllegalStateException( "No items in configuration to target with " + entry.getKey() );
+      }
+      schedule.addAll( Collections.nCopies( entry.getValue(), entry.getKey() ) );
+    }
+    return schedule;
+  }
+
+  @Nonnull
+  private List<String> getTargets( @Nonnull final Operation operation )
+  {
+    switch ( operation )
+    {
+      case list_children:
+        return _folders;
+      case get_report_definition:
+        return _reports;
+      default:
+        return _items;
+    }
+  }
+
+  private void perform( @Nonnull final Request request )
+  {
+    final Operation operation = request._operation;
+    final long intendedStart = request._intendedStart;
+    _dispatchDelays.record( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - intendedStart ) );
+    final List<String> targets = getTargets( operation );
+    final String target = targets.get( ThreadLocalRandom.current().nextInt( targets.size() ) );
+    try
+    {
+      switch ( operation )
+      {
+        case list_children:
+          _ssrs.listChildren( target );
+          break;
+        case get_item_type:
+          _ssrs.getItemType( target );
+          break;
+        case get_report_definition:
+          _ssrs.getReportDefinition( target );
+          break;
+        case get_properties:
+          _ssrs.getProperties( target );
+          break;
+      }
+      // A request that completes after it was abandoned has already been recorded
+      if ( request.complete() )
+      {
+        _completed.incrementAndGet();
+        _histograms.get( operation ).record( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - intendedStart ) );
+      }
+    }
+    catch ( final RuntimeException e )
+    {
+      if ( request.complete() )
+      {
+        _completed.incrementAndGet();
+        _errors.get( operation ).incrementAndGet();
+      }
+      SSRS.warning( "Load test " + operation + " of " + target + " failed: " + e );
+    }
+    finally
+    {
+      _outstanding.remove( request );
+    }
+  }
+
+  private static final class Request
+  {
+    @Nonnull
+    private final Operation _operation;
+    private final long _intendedStart;
+    private final AtomicBoolean _completed = new AtomicBoolean();
+
+    Request( @Nonnull final Operation operation, final long intendedStart )
+    {
+      _operation = operation;
+      _intendedStart = intendedStart;
+    }
+
+    /**
+     * Mark the request as complete, returning false if it was already completed or abandoned.
+     */
+    boolean complete()
+    {
+      return _completed.compareAndSet( false, true );
+    }
+  }
+}
@@ -1,12 +1,19 @@
 package org.realityforge.sqlserver.ssrs;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
 import org.realityforge.getopt4j.CLArgsParser;
 import org.realityforge.getopt4j.CLOption;
@@ -20,7 +27,7 @@ public class Main
 {
   enum Action
   {
-    upload, upload_reports, delete
+    upload, upload_reports, delete, loadtest
   }
 
   private static final int HELP_OPT = 1;
@@ -32,6 +39,16 @@ public class Main
   private static final int USERNAME_OPT = 5;
   private static final int PASSWORD_OPT = 6;
   private static final int CONFIG_OPT = 'c';
+  private static final String DEFAULT_LOADTEST_MIX =
+    "list_children:25,get_item_type:25,get_report_definition:25,get_properties:25";
+  private static final int WARMUP_CONCURRENCY_OPT = 7;
+  private static final int TRACE_FILE_OPT = 8;
+  private static final int BLUE_GREEN_OPT = 9;
+  private static final int LOADTEST_RATE_OPT = 10;
+  private static final int LOADTEST_DURATION_OPT = 11;
+  private static final int LOADTEST_MIX_OPT = 12;
+  private static final int LOADTEST_THREADS_OPT = 13;
+  private static final int MTOM_RESOURCES_OPT = 14;
   @Nonnull
   private static final CLOptionDescriptor[] OPTIONS = new CLOptionDescriptor[]{
     new CLOptionDescriptor( "report-target",
@@ -58,6 +75,41 @@ public class Main
                             CLOptionDescriptor.ARGUMENT_REQUIRED,
                             PASSWORD_OPT,
                             "The password used to access report server." ),
+    new CLOptionDescriptor( "warmup-concurrency",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            WARMUP_CONCURRENCY_OPT,
+                            "The maximum number of reports warmed concurrently after upload. Defaults to 4." ),
+    new CLOptionDescriptor( "trace-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            TRACE_FILE_OPT,
+                            "The file in which to write a Chrome trace-event timeline of the run." ),
+    new CLOptionDescriptor( "blue-green",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            BLUE_GREEN_OPT,
+                            "Upload into a staging folder and swap it with the upload prefix once complete." ),
+    new CLOptionDescriptor( "mtom-resources",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            MTOM_RESOURCES_OPT,
+                            "Stream resources as MTOM attachments rather than inline base64. " +
+                            "Only supported by servers that accept MTOM encoded requests." ),
+    new CLOptionDescriptor( "loadtest-rate",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LOADTEST_RATE_OPT,
+                            "The target number of requests per second issued by loadtest. Defaults to 10." ),
+    new CLOptionDescriptor( "loadtest-duration",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LOADTEST_DURATION_OPT,
+                            "The number of seconds for which loadtest issues requests. Defaults to 60." ),
+    new CLOptionDescriptor( "loadtest-mix",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LOADTEST_MIX_OPT,
+                            "The weighted mix of operations issued by loadtest. Defaults to " +
+                            DEFAULT_LOADTEST_MIX + "." ),
+    new CLOptionDescriptor( "loadtest-threads",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LOADTEST_THREADS_OPT,
+                            "The number of threads kept ready to issue loadtest requests. More are started " +
+                            "when every thread is busy. Defaults to 16." ),
     new CLOptionDescriptor( "help",
                             CLOptionDescriptor.ARGUMENT_DISALLOWED,
                             HELP_OPT,
@@ -86,48 +138,147 @@ public class Main
   private static String c_username;
   private static String c_password;
   private static String c_configFilename;
+  private static int c_warmupConcurrency = 4;
+  private static String c_traceFilename;
+  private static boolean c_blueGreen;
+  private static boolean c_mtomResources;
+  private static double c_loadtestRate = 10;
+  private static long c_loadtestDuration = 60;
+  @Nonnull
+  private static Map<LoadGenerator.Operation, Integer> c_loadtestMix = LoadGenerator.parseMix( DEFAULT_LOADTEST_MIX );
+  private static int c_loadtestThreads = 16;
 
   public static void main( @Nonnull final String[] args )
   {
     setupLogger();
+    System.exit( run( args ) );
+  }
+
+  /**
+   * Run the tool with the specified arguments and return the exit code.
+   */
+  static int run( @Nonnull final String[] args )
+  {
     if ( !processOptions( args ) )
     {
-      System.exit( ERROR_PARSING_ARGS_EXIT_CODE );
-      return;
+      return ERROR_PARSING_ARGS_EXIT_CODE;
     }
 
+    if ( Action.loadtest == c_action && null == System.getProperty( "http.maxConnections" ) )
+    {
+      // Keep an authenticated connection alive for every load test thread
+      System.setProperty( "http.maxConnections", String.valueOf( c_loadtestThreads ) );
+    }
+    final Tracer tracer = null != c_traceFilename ? new Tracer() : null;
+    Tracer.install( tracer );
+    int exitCode = SUCCESS_EXIT_CODE;
     try
     {
-      final Config config;
-      try ( final InputStream inputStream = new FileInputStream( c_configFilename ) )
-      {
-        config = JsonbBuilder.create().fromJson( inputStream, Config.class );
-      }
+      // Building the service model fetches the wsdl and creates the JAXB context which dominates
+      // startup so it proceeds in parallel with loading the configuration.
+      final FutureTask<Uploader> connect =
+        new FutureTask<>( () -> Tracer.call( "main",
+                                             "connect",
+                                             c_reportTarget,
+                                             () -> new Uploader( c_reportTarget,
+                                                                 c_uploadPrefix,
+                                                                 c_domain,
+                                                                 c_username,
+                                                                 c_password,
+                                                                 c_mtomResources ) ) );
+      final Thread thread = new Thread( connect, "ssrs-connect" );
+      thread.setDaemon( true );
+      thread.start();
 
-      final Uploader uploader = new Uploader( c_reportTarget, c_uploadPrefix, c_domain, c_username, c_password );
+      final Config config = Tracer.call( "main", "loadConfig", c_configFilename, Main::loadConfig );
+      final Uploader uploader = await( connect );
       if ( Action.delete == c_action )
       {
         uploader.deleteReports( config.reports );
+        if ( null != config.resources )
+        {
+          uploader.deleteResources( config.resources );
+        }
         uploader.deleteDataSources( config.dataSources );
       }
+      else if ( Action.upload == c_action && c_blueGreen )
+      {
+        uploader.uploadBlueGreen( config.dataSources, config.reports, config.resources, c_warmupConcurrency );
+        uploader.awaitCleanup();
+      }
       else if ( Action.upload == c_action )
       {
         uploader.uploadDataSources( config.dataSources );
         uploader.uploadReports( config.reports );
+        if ( null != config.resources )
+        {
+          uploader.uploadResources( config.resources );
+        }
+        uploader.warmReports( config.reports, c_warmupConcurrency );
       }
       else if ( Action.upload_reports == c_action )
       {
         uploader.uploadReports( config.reports );
+        uploader.warmReports( config.reports, c_warmupConcurrency );
+      }
+      else if ( Action.loadtest == c_action )
+      {
+        final LoadGenerator generator =
+          new LoadGenerator( uploader.getSSRS(),
+                             config,
+                             c_loadtestMix,
+                             c_loadtestRate,
+                             c_loadtestDuration,
+                             c_loadtestThreads );
+        generator.run();
+        c_logger.log( Level.INFO, generator.describeResults() );
       }
     }
     catch ( final Throwable t )
     {
       c_logger.log( Level.SEVERE, "Error: Error processing action: " + t );
       t.printStackTrace();
-      System.exit( ERROR_OTHER_EXIT_CODE );
-      return;
+      exitCode = ERROR_OTHER_EXIT_CODE;
+    }
+    if ( null != tracer )
+    {
+      try
+      {
+        tracer.write( new File( c_traceFilename ) );
+      }
+      catch ( final IOException ioe )
+      {
+        c_logger.log( Level.SEVERE, "Error: Failed to write trace file " + c_traceFilename + ": " + ioe );
+        exitCode = ERROR_OTHER_EXIT_CODE;
+      }
+    }
+    return exitCode;
+  }
+
+  @Nonnull
+  private static Config loadConfig()
+    throws IOException
+  {
+    // Created here rather than eagerly so that it is initialized concurrently with the connect thread
+    final Jsonb jsonb = JsonbBuilder.create();
+    try ( final InputStream inputStream = new FileInputStream( c_configFilename ) )
+    {
+      return jsonb.fromJson( inputStream, Config.class );
+    }
+  }
+
+  @Nonnull
+  private static <T> T await( @Nonnull final Future<T> future )
+    throws Throwable
+  {
+    try
+    {
+      return future.get();
+    }
+    catch ( final ExecutionException ee )
+    {
+      throw ee.getCause();
     }
-    System.exit( SUCCESS_EXIT_CODE );
   }
 
   private static void setupLogger()
@@ -140,6 +291,9 @@ public class Main
 
   private static boolean processOptions( @Nonnull final String[] args )
   {
+    // Options are held in static fields so restore the defaults in case run is invoked more than once
+    resetOptions();
+
     // Parse the arguments
     final CLArgsParser parser = new CLArgsParser( args, OPTIONS );
 
@@ -200,6 +354,111 @@ public class Main
           c_configFilename = option.getArgument();
           break;
         }
+        case LOADTEST_RATE_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            c_loadtestRate = Double.parseDouble( value );
+          }
+          catch ( final NumberFormatException nfe )
+          {
+            c_logger.log( Level.SEVERE, "Error: Bad loadtest rate: " + value );
+            return false;
+          }
+          if ( !( c_loadtestRate > 0 ) )
+          {
+            c_logger.log( Level.SEVERE, "Error: Loadtest rate must be greater than 0" );
+            return false;
+          }
+          break;
+        }
+        case LOADTEST_DURATION_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            c_loadtestDuration = Long.parseLong( value );
+          }
+          catch ( final NumberFormatException nfe )
+          {
+            c_logger.log( Level.SEVERE, "Error: Bad loadtest duration: " + value );
+            return false;
+          }
+          if ( c_loadtestDuration < 1 )
+          {
+            c_logger.log( Level.SEVERE, "Error: Loadtest duration must be greater than 0" );
+            return false;
+          }
+          break;
+        }
+        case LOADTEST_MIX_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            c_loadtestMix = LoadGenerator.parseMix( value );
+          }
+          catch ( final IllegalArgumentException iae )
+          {
+            c_logger.log( Level.SEVERE, "Error: Bad loadtest mix: " + value + ". " + iae.getMessage() );
+            return false;
+          }
+          break;
+        }
+        case LOADTEST_THREADS_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            c_loadtestThreads = Integer.parseInt( value );
+          }
+          catch ( final NumberFormatException nfe )
+          {
+            c_logger.log( Level.SEVERE, "Error: Bad loadtest threads: " + value );
+            return false;
+          }
+          if ( c_loadtestThreads < 1 )
+          {
+            c_logger.log( Level.SEVERE, "Error: Loadtest threads must be greater than 0" );
+            return false;
+          }
+          break;
+        }
+        case BLUE_GREEN_OPT:
+        {
+          c_blueGreen = true;
+          break;
+        }
+        case MTOM_RESOURCES_OPT:
+        {
+          c_mtomResources = true;
+          break;
+        }
+        case TRACE_FILE_OPT:
+        {
+          c_traceFilename = option.getArgument();
+          break;
+        }
+        case WARMUP_CONCURRENCY_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            c_warmupConcurrency = Integer.parseInt( value );
+          }
+          catch ( final NumberFormatException nfe )
+          {
+            c_logger.log( Level.SEVERE, "Error: Bad warmup concurrency: " + value );
+            return false;
+          }
+          if ( c_warmupConcurrency < 1 )
+          {
+            c_logger.log( Level.SEVERE, "Error: Warmup concurrency must be greater than 0" );
+            return false;
+          }
+          break;
+        }
         case VERBOSE_OPT:
         {
           c_logger.setLevel( Level.ALL );
@@ -238,6 +497,16 @@ public class Main
       c_logger.log( Level.SEVERE, "Error: Action must be specified" );
       return false;
     }
+    if ( c_blueGreen && Action.upload != c_action )
+    {
+      c_logger.log( Level.SEVERE, "Error: Blue/green mode is only supported by the upload action" );
+      return false;
+    }
+    if ( c_blueGreen && c_uploadPrefix.replace( "/", "" ).isEmpty() )
+    {
+      c_logger.log( Level.SEVERE, "Error: Blue/green mode requires a non-empty upload prefix" );
+      return false;
+    }
     if ( c_logger.isLoggable( Level.FINE ) )
     {
       c_logger.log( Level.INFO, "Action: " + c_action );
@@ -254,6 +523,26 @@ public class Main
     return true;
   }
 
+  private static void resetOptions()
+  {
+    c_action = null;
+    c_reportTarget = null;
+    c_uploadPrefix = "";
+    c_domain = null;
+    c_username = null;
+    c_password = null;
+    c_configFilename = null;
+    c_warmupConcurrency = 4;
+    c_traceFilename = null;
+    c_blueGreen = false;
+    c_mtomResources = false;
+    c_loadtestRate = 10;
+    c_loadtestDuration = 60;
+    c_loadtestMix = LoadGenerator.parseMix( DEFAULT_LOADTEST_MIX );
+    c_loadtestThreads = 16;
+    c_logger.setLevel( null );
+  }
+
   /**
    * Print out a usage statement
    */
@@ -266,7 +555,7 @@ public class Main
 
     msg.append( "java " );
     msg.append( Main.class.getName() );
-    msg.append( " [options] (upload|upload_reports|delete)" );
+    msg.append( " [options] (upload|upload_reports|delete|loadtest)" );
     msg.append( lineSeparator );
     msg.append( "Options: " );
     msg.append( lineSeparator );
@@ -1,30 +1,315 @@
 package org.realityforge.sqlserver.ssrs;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.Authenticator;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import javax.xml.ws.BindingProvider;
 
+/**
+ * Supplies NTLM credentials to the JVM's http stack.
+ *
+ * <p>A single dispatching authenticator is installed as the JVM default and it answers each challenge
+ * with the credentials bound to the current thread, falling back to the credentials specified via
+ * {@link #install(String, String, String)}. This allows separate ports to authenticate as different
+ * accounts concurrently.</p>
+ *
+ * <p>Authenticated connections are returned to the JVM keep-alive pool and reused so the NTLM handshake
+ * is paid once per pooled connection. The pool is keyed by host, port and socket factory so each
+ * instance supplies a distinct socket factory for https endpoints, ensuring a connection authenticated
+ * as one account is never reused by another.</p>
+ *
+ * <p>The JVM pool can not be partitioned for plain http endpoints and the server keeps NTLM authentication
+ * per connection, so a request made for one account could run as another account on a reused connection.
+ * To prevent this, a plain http host and port is claimed by the first account that accesses it and any
+ * attempt to access it as a different account for the remaining lifetime of the JVM fails with an
+ * {@link IllegalStateException}. Use https endpoints to access a server as several accounts.</p>
+ */
 public final class NTLMAuthenticator
   extends Authenticator
 {
+  private static final String[] SSL_SOCKET_FACTORY_PROPERTIES = new String[]{
+    "com.sun.xml.ws.transport.https.client.SSLSocketFactory",
+    "com.sun.xml.internal.ws.transport.https.client.SSLSocketFactory" };
+  private static final ThreadLocal<NTLMAuthenticator> c_current = new ThreadLocal<>();
+  private static NTLMAuthenticator c_default;
+  private static boolean c_dispatcherInstalled;
+  private static final Map<String, NTLMAuthenticator> c_httpIdentities = new HashMap<>();
   private final String _domainName;
   private final String _userName;
   private final char[] _password;
+  private final SSLSocketFactory _socketFactory = new IsolatedSocketFactory();
 
-  NTLMAuthenticator( final String domainName, final String userName, final String password )
+  public NTLMAuthenticator( final String domainName, final String userName, final String password )
   {
+    if ( null == domainName )
+    {
+      throw new NullPointerException( "domainName" );
+    }
+    if ( null == userName )
+    {
+      throw new NullPointerException( "userName" );
+    }
+    if ( null == password )
+    {
+      throw new NullPointerException( "password" );
+    }
     _domainName = domainName;
     _userName = userName;
     _password = password.toCharArray();
   }
 
-  public static void install( final String domainName, final String userName, final String password )
+  /**
+   * Install credentials used for any connection that is not made via a port bound to an authenticator.
+   */
+  public static synchronized void install( final String domainName, final String userName, final String password )
   {
-    Authenticator.setDefault( new NTLMAuthenticator( domainName, userName, password ) );
+    c_default = new NTLMAuthenticator( domainName, userName, password );
+    installDispatcher();
+  }
+
+  private static synchronized void installDispatcher()
+  {
+    if ( !c_dispatcherInstalled )
+    {
+      // The JVM caches NTLM credentials per host by default which would leak one
+      // account's credentials into handshakes made on behalf of another account.
+      if ( null == System.getProperty( "jdk.ntlm.cache" ) )
+      {
+        System.setProperty( "jdk.ntlm.cache", "false" );
+      }
+      Authenticator.setDefault( new Dispatcher() );
+      c_dispatcherInstalled = true;
+    }
+  }
+
+  /**
+   * Invoke the supplier with the credentials of this authenticator bound to the current thread.
+   */
+  <T> T runAs( final Supplier<T> supplier )
+  {
+    installDispatcher();
+    final NTLMAuthenticator previous = c_current.get();
+    c_current.set( this );
+    try
+    {
+      return supplier.get();
+    }
+    finally
+    {
+      c_current.set( previous );
+    }
+  }
+
+  /**
+   * Wrap the port so that every operation invoked authenticates using this authenticator and reuses
+   * connections authenticated for this authenticator.
+   */
+  @SuppressWarnings( "unchecked" )
+  <T> T bind( final Class<T> type, final T port )
+  {
+    installDispatcher();
+    if ( port instanceof BindingProvider )
+    {
+      configure( (BindingProvider) port );
+    }
+    final Class<?>[] interfaces =
+      port instanceof BindingProvider ? new Class<?>[]{ type, BindingProvider.class } : new Class<?>[]{ type };
+    final InvocationHandler handler = ( proxy, method, args ) -> {
+      final NTLMAuthenticator previous = c_current.get();
+      c_current.set( this );
+      try
+      {
+        return method.invoke( port, args );
+      }
+      catch ( final InvocationTargetException ite )
+      {
+        throw ite.getCause();
+      }
+      finally
+      {
+        c_current.set( previous );
+      }
+    };
+    return (T) Proxy.newProxyInstance( type.getClassLoader(), interfaces, handler );
+  }
+
+  /**
+   * Configure the binding so that it reuses connections authenticated for this authenticator.
+   * Invocations must still be made within {@link #runAs(Supplier)}.
+   */
+  void configure( final BindingProvider bindingProvider )
+  {
+    final Object address = bindingProvider.getRequestContext().get( BindingProvider.ENDPOINT_ADDRESS_PROPERTY );
+    if ( address instanceof String )
+    {
+      final URL url;
+      try
+      {
+        url = new URL( (String) address );
+      }
+      catch ( final MalformedURLException mue )
+      {
+        throw new IllegalArgumentException( "Bad endpoint address " + address, mue );
+      }
+      final NTLMAuthenticator existing = claimHttpEndpoint( url, this );
+      if ( null != existing )
+      {
+        throw new IllegalStateException( "Unable to access " + address + " as " + describe() + " as the " +
+                                         "endpoint has already been accessed over plain http as " +
+                                         existing.describe() + ". Authenticated http connections are " +
+                                         "shared per host so only one account may be used. Use an https " +
+                                         "endpoint to access the server as multiple accounts." );
+      }
+    }
+    for ( final String property : SSL_SOCKET_FACTORY_PROPERTIES )
+    {
+      bindingProvider.getRequestContext().put( property, _socketFactory );
+    }
   }
 
   @Override
   protected PasswordAuthentication getPasswordAuthentication()
   {
-    return new PasswordAuthentication( _domainName + "\\" + _userName, _password );
+    return new PasswordAuthentication( describe(), _password );
+  }
+
+  private String describe()
+  {
+    return _domainName + "\\" + _userName;
+  }
+
+  private boolean isSameAccount( final NTLMAuthenticator other )
+  {
+    return _domainName.equalsIgnoreCase( other._domainName ) && _userName.equalsIgnoreCase( other._userName );
+  }
+
+  /**
+   * Claim the plain http endpoint for the account if it is not already claimed.
+   *
+   * @return null if the endpoint is not plain http or is claimed by the same account, otherwise the
+   * authenticator for the account that claimed the endpoint.
+   */
+  private static NTLMAuthenticator claimHttpEndpoint( final URL url, final NTLMAuthenticator authenticator )
+  {
+    if ( !"http".equalsIgnoreCase( url.getProtocol() ) )
+    {
+      return null;
+    }
+    final String key = url.getHost().toLowerCase() + ":" + ( -1 == url.getPort() ? url.getDefaultPort() : url.getPort() );
+    synchronized ( c_httpIdentities )
+    {
+      final NTLMAuthenticator existing = c_httpIdentities.putIfAbsent( key, authenticator );
+      return null == existing || existing.isSameAccount( authenticator ) ? null : existing;
+    }
+  }
+
+  private static final class Dispatcher
+    extends Authenticator
+  {
+    @Override
+    protected PasswordAuthentication getPasswordAuthentication()
+    {
+      final NTLMAuthenticator current = c_current.get();
+      final NTLMAuthenticator authenticator = null != current ? current : c_default;
+      if ( null == authenticator )
+      {
+        return null;
+      }
+      final URL url = getRequestingURL();
+      if ( null != url && RequestorType.SERVER == getRequestorType() )
+      {
+        final NTLMAuthenticator existing = claimHttpEndpoint( url, authenticator );
+        if ( null != existing )
+        {
+          // Refuse to authenticate rather than run requests as the wrong account
+          SSRS.warning( "Refusing to authenticate to " + url + " as " + authenticator.describe() +
+                        " as the host has already been accessed over plain http as " + existing.describe() );
+          return null;
+        }
+      }
+      return authenticator.getPasswordAuthentication();
+    }
+  }
+
+  /**
+   * A socket factory that delegates to the default factory but has a distinct identity so that the
+   * JVM keep-alive pool does not share connections between authenticators.
+   */
+  private static final class IsolatedSocketFactory
+    extends SSLSocketFactory
+  {
+    private SSLSocketFactory delegate()
+    {
+      return HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+      return delegate().getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+      return delegate().getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket()
+      throws IOException
+    {
+      return delegate().createSocket();
+    }
+
+    @Override
+    public Socket createSocket( final Socket socket, final String host, final int port, final boolean autoClose )
+      throws IOException
+    {
+      return delegate().createSocket( socket, host, port, autoClose );
+    }
+
+    @Override
+    public Socket createSocket( final String host, final int port )
+      throws IOException
+    {
+      return delegate().createSocket( host, port );
+    }
+
+    @Override
+    public Socket createSocket( final String host, final int port, final InetAddress localHost, final int localPort )
+      throws IOException
+    {
+      return delegate().createSocket( host, port, localHost, localPort );
+    }
+
+    @Override
+    public Socket createSocket( final InetAddress host, final int port )
+      throws IOException
+    {
+      return delegate().createSocket( host, port );
+    }
+
+    @Override
+    public Socket createSocket( final InetAddress address,
+                                final int port,
+                                final InetAddress localAddress,
+                                final int localPort )
+      throws IOException
+    {
+      return delegate().createSocket( address, port, localAddress, localPort );
+    }
   }
 }
@@ -2,6 +2,29 @@ package org.realityforge.sqlserver.ssrs;
 
 public class Report
 {
+  /**
+   * The strategy used to warm a report after it has been uploaded.
+   *
+   * <p>Uploading deletes and recreates the report so it always starts with live execution and an
+   * empty cache. The only strategy that changes what viewers receive is <code>execution_snapshot</code>
+   * which switches the report to render from an execution snapshot (SetExecutionOptions) and then
+   * generates that snapshot (UpdateReportExecutionSnapshot). Flushing the cache or creating a history
+   * snapshot does not warm a freshly created report and so is not supported.</p>
+   *
+   * <p>The snapshot is not refreshed on a schedule. Viewers of a warmed report receive the data as it
+   * was when the report was uploaded until the report is next uploaded, so this is only suitable for
+   * reports over data that does not change between deploys. If the snapshot can not be generated the
+   * report is restored to live execution.</p>
+   */
+  public enum Warmup
+  {
+    execution_snapshot
+  }
+
   public String name;
   public String filename;
+  /**
+   * The warmup strategy for the report or null if the report should not be warmed after upload.
+   */
+  public Warmup warmup;
 }
@@ -0,0 +1,8 @@
+package org.realityforge.sqlserver.ssrs;
+
+public class Resource
+{
+  public String name;
+  public String filename;
+  public String mimeType;
+}
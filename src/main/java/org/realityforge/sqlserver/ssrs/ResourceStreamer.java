@@ -0,0 +1,210 @@
+package org.realityforge.sqlserver.ssrs;
+
+import java.io.File;
+import java.net.HttpRetryException;
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlMimeType;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.MTOMFeature;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.ArrayOfProperty;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.CreateResourceResponse;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.ReportingService2005Soap;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.SetResourceContentsResponse;
+
+/**
+ * Uploads resource contents as MTOM/XOP attachments streamed from disk.
+ *
+ * <p>The generated port maps the Contents element to a <code>byte[]</code> which forces the whole file
+ * onto the heap and inlines it as base64. This class instead sends the request via a {@link Dispatch}
+ * using request beans that map Contents to a file backed {@link DataHandler}, and enables chunked
+ * streaming so that the http stack does not buffer the request body either.</p>
+ *
+ * <p>The stock ASMX report server endpoint does not accept MTOM encoded requests so this is only used
+ * when explicitly enabled for a server, or gateway in front of the server, that does.</p>
+ *
+ * <p>A streamed request body can not be replayed so the http stack can not answer an NTLM challenge
+ * for it. Each request is therefore preceded by a cheap catalog call on the same thread, using the same
+ * credentials and socket factory, which authenticates a keep-alive connection that the streamed request
+ * then reuses. If the server still challenges the streamed request the upload fails.</p>
+ */
+final class ResourceStreamer
+{
+  private static final String NAMESPACE =
+    "http://schemas.microsoft.com/sqlserver/2005/06/30/reporting/reportingservices";
+  private static final String[] CHUNK_SIZE_PROPERTIES = new String[]{
+    "com.sun.xml.ws.transport.http.client.streaming.chunk.size",
+    "com.sun.xml.internal.ws.transport.http.client.streaming.chunk.size" };
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static JAXBContext c_context;
+  @Nonnull
+  private final Service _service;
+  @Nonnull
+  private final QName _portName;
+  @Nonnull
+  private final String _endpointAddress;
+  @Nonnull
+  private final ReportingService2005Soap _soap;
+  @Nullable
+  private final NTLMAuthenticator _authenticator;
+
+  ResourceStreamer( @Nonnull final Service service,
+                    @Nonnull final QName portName,
+                    @Nonnull final String endpointAddress,
+                    @Nonnull final ReportingService2005Soap soap,
+                    @Nullable final NTLMAuthenticator authenticator )
+  {
+    _service = service;
+    _portName = portName;
+    _endpointAddress = endpointAddress;
+    _soap = soap;
+    _authenticator = authenticator;
+  }
+
+  void createResource( @Nonnull final String resource,
+                       @Nonnull final String parent,
+                       @Nonnull final File file,
+                       @Nullable final String mimeType )
+  {
+    final CreateResourceRequest request = new CreateResourceRequest();
+    request.resource = resource;
+    request.parent = parent;
+    request.overwrite = false;
+    request.contents = new DataHandler( new FileDataSource( file ) );
+    request.mimeType = mimeType;
+    request.properties = new ArrayOfProperty();
+    invoke( "CreateResource", parent + "/" + resource, request );
+  }
+
+  void setResourceContents( @Nonnull final String resource,
+                            @Nonnull final File file,
+                            @Nullable final String mimeType )
+  {
+    final SetResourceContentsRequest request = new SetResourceContentsRequest();
+    request.resource = resource;
+    request.contents = new DataHandler( new FileDataSource( file ) );
+    request.mimeType = mimeType;
+    invoke( "SetResourceContents", resource, request );
+  }
+
+  private void invoke( @Nonnull final String operation, @Nonnull final String item, @Nonnull final Object request )
+  {
+    final Dispatch<Object> dispatch =
+      _service.createDispatch( _portName, getContext(), Service.Mode.PAYLOAD, new MTOMFeature( true ) );
+    dispatch.getRequestContext().put( BindingProvider.ENDPOINT_ADDRESS_PROPERTY, _endpointAddress );
+    dispatch.getRequestContext().put( BindingProvider.SOAPACTION_USE_PROPERTY, Boolean.TRUE );
+    dispatch.getRequestContext().put( BindingProvider.SOAPACTION_URI_PROPERTY, NAMESPACE + "/" + operation );
+    for ( final String property : CHUNK_SIZE_PROPERTIES )
+    {
+      dispatch.getRequestContext().put( property, CHUNK_SIZE );
+    }
+    if ( null != _authenticator )
+    {
+      _authenticator.configure( dispatch );
+    }
+    if ( !Boolean.parseBoolean( System.getProperty( "http.keepAlive", "true" ) ) )
+    {
+      throw new IllegalStateException( "Unable to stream resource " + item + " as MTOM requests require " +
+                                       "http keep-alive to reuse an authenticated connection" );
+    }
+    Tracer.run( "soap", operation, item, () -> {
+      try
+      {
+        if ( null != _authenticator )
+        {
+          _authenticator.runAs( () -> send( dispatch, item, request ) );
+        }
+        else
+        {
+          send( dispatch, item, request );
+        }
+      }
+      catch ( final WebServiceException wse )
+      {
+        if ( wse.getCause() instanceof HttpRetryException )
+        {
+          throw new IllegalStateException( "The server issued an authentication challenge for the streamed " +
+                                           operation + " request for " + item + " which can not be replayed. " +
+                                           "Disable MTOM resource uploads for this server.", wse );
+        }
+        throw wse;
+      }
+    } );
+  }
+
+  private Object send( @Nonnull final Dispatch<Object> dispatch,
+                       @Nonnull final String item,
+                       @Nonnull final Object request )
+  {
+    // Authenticate a keep-alive connection that the streamed request will reuse
+    _soap.getItemType( item );
+    return dispatch.invoke( request );
+  }
+
+  @Nonnull
+  private static synchronized JAXBContext getContext()
+  {
+    if ( null == c_context )
+    {
+      try
+      {
+        c_context = JAXBContext.newInstance( CreateResourceRequest.class,
+                                             CreateResourceResponse.class,
+                                             SetResourceContentsRequest.class,
+                                             SetResourceContentsResponse.class );
+      }
+      catch ( final JAXBException e )
+      {
+        throw new IllegalStateException( "Unable to create JAXB context for resource requests", e );
+      }
+    }
+    return c_context;
+  }
+
+  @XmlRootElement( name = "CreateResource", namespace = NAMESPACE )
+  @XmlAccessorType( XmlAccessType.FIELD )
+  @XmlType( name = "", propOrder = { "resource", "parent", "overwrite", "contents", "mimeType", "properties" } )
+  static final class CreateResourceRequest
+  {
+    @XmlElement( name = "Resource", namespace = NAMESPACE )
+    String resource;
+    @XmlElement( name = "Parent", namespace = NAMESPACE )
+    String parent;
+    @XmlElement( name = "Overwrite", namespace = NAMESPACE )
+    boolean overwrite;
+    @XmlElement( name = "Contents", namespace = NAMESPACE )
+    @XmlMimeType( "application/octet-stream" )
+    DataHandler contents;
+    @XmlElement( name = "MimeType", namespace = NAMESPACE )
+    String mimeType;
+    @XmlElement( name = "Properties", namespace = NAMESPACE )
+    ArrayOfProperty properties;
+  }
+
+  @XmlRootElement( name = "SetResourceContents", namespace = NAMESPACE )
+  @XmlAccessorType( XmlAccessType.FIELD )
+  @XmlType( name = "", propOrder = { "resource", "contents", "mimeType" } )
+  static final class SetResourceContentsRequest
+  {
+    @XmlElement( name = "Resource", namespace = NAMESPACE )
+    String resource;
+    @XmlElement( name = "Contents", namespace = NAMESPACE )
+    @XmlMimeType( "application/octet-stream" )
+    DataHandler contents;
+    @XmlElement( name = "MimeType", namespace = NAMESPACE )
+    String mimeType;
+  }
+}
@@ -8,19 +8,26 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Holder;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ArrayOfCatalogItem;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.ArrayOfPolicy;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ArrayOfProperty;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ArrayOfWarning;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.CatalogItem;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.CredentialRetrievalEnum;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.DataSourceDefinition;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.ExecutionSettingEnum;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ItemTypeEnum;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.NoSchedule;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ReportingService2005;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.ReportingService2005Soap;
 import org.realityforge.sqlserver.ssrs.reportingservice2005.Warning;
@@ -33,9 +40,16 @@ public class SSRS
 {
   private static final Logger LOG = Logger.getLogger( SSRS.class.getName() );
   private static final String PATH_SEPARATOR = "/";
+  private static final QName PORT_NAME =
+    new QName( "http://schemas.microsoft.com/sqlserver/2005/06/30/reporting/reportingservices",
+               "ReportingService2005Soap" );
+  private static final String BUNDLED_WSDL = "/ReportingService2005.wsdl";
+  private static final Map<String, ReportingService2005> c_services = new ConcurrentHashMap<>();
 
   private final ReportingService2005Soap _soap;
   private final String _prefix;
+  private final ResourceStreamer _resources;
+  private boolean _mtomResources;
 
   /**
    * Create an adapter for a specific service, acting on a particular path.
@@ -44,6 +58,26 @@ public class SSRS
    * @param prefix  the prefix for all reports interacted with by this adapter
    */
   public SSRS( final URL wsdlURL, final String prefix )
+  {
+    this( wsdlURL, prefix, null );
+  }
+
+  /**
+   * Create an adapter for a specific service, acting on a particular path using specific credentials.
+   *
+   * @param wsdlURL       the URL to the wsdl for the service
+   * @param prefix        the prefix for all reports interacted with by this adapter
+   * @param authenticator the credentials used by this adapter or null to use the JVM default
+   */
+  public SSRS( final URL wsdlURL, final String prefix, final NTLMAuthenticator authenticator )
+  {
+    this( wsdlURL, null, prefix, authenticator );
+  }
+
+  private SSRS( final URL wsdlURL,
+                final URL endpoint,
+                final String prefix,
+                final NTLMAuthenticator authenticator )
   {
     if ( null == wsdlURL )
     {
@@ -54,11 +88,57 @@ public class SSRS
       throw new NullPointerException( "prefix" );
     }
     _prefix = prefix;
-    final QName qName =
-      new QName( "http://schemas.microsoft.com/sqlserver/2005/06/30/reporting/reportingservices",
-                 "ReportingService2005" );
-    final ReportingService2005 service = new ReportingService2005( wsdlURL, qName );
-    _soap = service.getReportingService2005Soap();
+    final ReportingService2005 service = getService( wsdlURL, authenticator );
+    final ReportingService2005Soap unbound = service.getReportingService2005Soap();
+    final Map<String, Object> requestContext = ( (BindingProvider) unbound ).getRequestContext();
+    if ( null != endpoint )
+    {
+      requestContext.put( BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint.toExternalForm() );
+    }
+    final String endpointAddress = (String) requestContext.get( BindingProvider.ENDPOINT_ADDRESS_PROPERTY );
+    final ReportingService2005Soap port =
+      null == authenticator ? unbound : authenticator.bind( ReportingService2005Soap.class, unbound );
+    _soap = Tracer.isEnabled() ? Tracer.traceSoap( ReportingService2005Soap.class, port ) : port;
+    _resources = new ResourceStreamer( service, PORT_NAME, endpointAddress, _soap, authenticator );
+  }
+
+  /**
+   * Create an adapter for the service at the specified endpoint, acting on a particular path.
+   * The wsdl bundled with the library is used rather than fetching and parsing the wsdl from the server.
+   *
+   * @param endpoint      the URL of the service endpoint
+   * @param prefix        the prefix for all reports interacted with by this adapter
+   * @param authenticator the credentials used by this adapter or null to use the JVM default
+   */
+  public static SSRS forEndpoint( final URL endpoint, final String prefix, final NTLMAuthenticator authenticator )
+  {
+    if ( null == endpoint )
+    {
+      throw new NullPointerException( "endpoint" );
+    }
+    final URL wsdlURL = SSRS.class.getResource( BUNDLED_WSDL );
+    if ( null == wsdlURL )
+    {
+      throw new IllegalStateException( "Unable to locate bundled wsdl " + BUNDLED_WSDL );
+    }
+    return new SSRS( wsdlURL, endpoint, prefix, authenticator );
+  }
+
+  /**
+   * Return the service for the wsdl, creating it if necessary.
+   * Services are cached so that the wsdl is parsed and the JAXB runtime model is built once per
+   * wsdl rather than once per adapter.
+   */
+  private static ReportingService2005 getService( final URL wsdlURL, final NTLMAuthenticator authenticator )
+  {
+    return c_services.computeIfAbsent( wsdlURL.toExternalForm(), k -> {
+      final QName qName =
+        new QName( "http://schemas.microsoft.com/sqlserver/2005/06/30/reporting/reportingservices",
+                   "ReportingService2005" );
+      return null == authenticator ?
+             new ReportingService2005( wsdlURL, qName ) :
+             authenticator.runAs( () -> new ReportingService2005( wsdlURL, qName ) );
+    } );
   }
 
   /**
@@ -202,6 +282,100 @@ public class SSRS
     }
   }
 
+  /**
+   * Specify whether resource contents are streamed from disk as MTOM attachments rather than inlined in
+   * the request as base64. MTOM avoids holding the whole resource in memory but is not accepted by the stock
+   * ASMX endpoint so it should only be enabled for servers known to accept MTOM encoded requests.
+   */
+  public void setMtomResources( final boolean mtomResources )
+  {
+    _mtomResources = mtomResources;
+  }
+
+  /**
+   * Upload a resource at specific path from specified file. If a resource exists at the path then its
+   * contents are replaced. The contents are inlined as base64 unless MTOM has been enabled via
+   * {@link #setMtomResources(boolean)}.
+   */
+  public void uploadResource( final String path, final String filename, final String mimeType )
+  {
+    final File file = new File( filename );
+    info( "Uploading Resource " + path );
+    final String physicalName = toPhysicalFileName( path );
+    LOG.fine( "Uploading Resource with symbolic item " + path + " as " + physicalName );
+    if ( !file.exists() )
+    {
+      final String message = "Resource file " + file.getAbsolutePath() + " for " + path + " does not exist.";
+      throw new IllegalStateException( message );
+    }
+    final ItemTypeEnum type = _soap.getItemType( physicalName );
+    if ( ItemTypeEnum.RESOURCE == type )
+    {
+      LOG.finer( "Invoking setResourceContents(resource=" + physicalName + ")" );
+      if ( _mtomResources )
+      {
+        _resources.setResourceContents( physicalName, file, mimeType );
+      }
+      else
+      {
+        _soap.setResourceContents( physicalName, readFully( path, file ), mimeType );
+      }
+    }
+    else if ( ItemTypeEnum.UNKNOWN == type )
+    {
+      final String resourceName = filenameFromPath( physicalName );
+      final String resourceDir = dirname( physicalName );
+      LOG.finer( "Invoking createResource(name=" + resourceName + ",parentDir=" + resourceDir + ")" );
+      if ( _mtomResources )
+      {
+        _resources.createResource( resourceName, resourceDir, file, mimeType );
+      }
+      else
+      {
+        final byte[] bytes = readFully( path, file );
+        _soap.createResource( resourceName, resourceDir, false, bytes, mimeType, new ArrayOfProperty() );
+      }
+    }
+    else
+    {
+      final String s = "Can not upload resource as path " + physicalName + " exists and is of type " + type + ".";
+      throw new IllegalStateException( s );
+    }
+  }
+
+  /**
+   * Configure the report at specified path to render from an execution snapshot without a refresh schedule.
+   */
+  public void setSnapshotExecution( final String path )
+  {
+    info( "Setting Report " + path + " to render from execution snapshot" );
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking setExecutionOptions(report=" + physicalName + ",executionSetting=Snapshot)" );
+    _soap.setExecutionOptions( physicalName, ExecutionSettingEnum.SNAPSHOT, null, new NoSchedule(), null );
+  }
+
+  /**
+   * Configure the report at specified path to render live on each request.
+   */
+  public void setLiveExecution( final String path )
+  {
+    info( "Setting Report " + path + " to render live" );
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking setExecutionOptions(report=" + physicalName + ",executionSetting=Live)" );
+    _soap.setExecutionOptions( physicalName, ExecutionSettingEnum.LIVE, null, new NoSchedule(), null );
+  }
+
+  /**
+   * Update the execution snapshot for the report at specified path.
+   */
+  public void updateReportExecutionSnapshot( final String path )
+  {
+    info( "Updating execution snapshot for Report " + path );
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking updateReportExecutionSnapshot(report=" + physicalName + ")" );
+    _soap.updateReportExecutionSnapshot( physicalName );
+  }
+
   /**
    * List files at symbolic path.
    */
@@ -259,6 +433,78 @@ public class SSRS
     }
   }
 
+  /**
+   * Return the type of the item at symbolic path.
+   */
+  public ItemTypeEnum getItemType( final String path )
+  {
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking getItemType(item=" + physicalName + ")" );
+    return _soap.getItemType( physicalName );
+  }
+
+  /**
+   * Return the definition of the report at symbolic path.
+   */
+  public byte[] getReportDefinition( final String path )
+  {
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking getReportDefinition(report=" + physicalName + ")" );
+    return _soap.getReportDefinition( physicalName );
+  }
+
+  /**
+   * Return the properties of the item at symbolic path.
+   */
+  public ArrayOfProperty getProperties( final String path )
+  {
+    final String physicalName = toPhysicalFileName( path );
+    LOG.finer( "Invoking getProperties(item=" + physicalName + ")" );
+    return _soap.getProperties( physicalName, null );
+  }
+
+  /**
+   * Return the items directly contained by the folder at symbolic path.
+   */
+  public List<CatalogItem> listChildren( final String path )
+  {
+    return listItems( path );
+  }
+
+  /**
+   * Move the item at symbolic path to the target symbolic path. The target must not exist.
+   */
+  public void moveItem( final String path, final String target )
+  {
+    info( "Moving item " + path + " to " + target );
+    final String physicalName = toPhysicalFileName( path );
+    final String physicalTarget = toPhysicalFileName( target );
+    LOG.finer( "Invoking moveItem(item=" + physicalName + ",target=" + physicalTarget + ")" );
+    _soap.moveItem( physicalName, physicalTarget );
+  }
+
+  /**
+   * Copy the security policies of the item at symbolic path to the item at the target symbolic path.
+   * If the source item inherits its policies from its parent then the target is left unchanged.
+   */
+  public void copyPolicies( final String path, final String target )
+  {
+    final String physicalName = toPhysicalFileName( path );
+    final String physicalTarget = toPhysicalFileName( target );
+    LOG.finer( "Invoking getPolicies(item=" + physicalName + ")" );
+    final Holder<ArrayOfPolicy> policies = new Holder<>();
+    final Holder<Boolean> inheritParent = new Holder<>();
+    _soap.getPolicies( physicalName, policies, inheritParent );
+    if ( !Boolean.FALSE.equals( inheritParent.value ) )
+    {
+      LOG.fine( "Item " + physicalName + " inherits policies from parent so policies not copied" );
+      return;
+    }
+    info( "Copying policies from " + path + " to " + target );
+    LOG.finer( "Invoking setPolicies(item=" + physicalTarget + ")" );
+    _soap.setPolicies( physicalTarget, policies.value );
+  }
+
   /**
    * Create a directory node at specified path. Path must not exist.
    */
@@ -377,7 +623,9 @@ public class SSRS
 
   private List<CatalogItem> listItems( final String path )
   {
-    final String physicalName = toPhysicalFileName( path );
+    // The root folder must be addressed as "/" when there is no prefix
+    final String name = toPhysicalFileName( path );
+    final String physicalName = name.isEmpty() ? PATH_SEPARATOR : name;
     LOG.finer( "Invoking listChildren(item=" + physicalName + ")" );
     final ArrayOfCatalogItem children = _soap.listChildren( physicalName, false );
     return children.getCatalogItem();
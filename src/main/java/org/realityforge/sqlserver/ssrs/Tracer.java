@@ -0,0 +1,255 @@
+package org.realityforge.sqlserver.ssrs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.jws.WebParam;
+import javax.xml.ws.BindingProvider;
+
+/**
+ * Records timed spans and writes them in the Chrome/Perfetto trace-event JSON format.
+ * Spans that are opened and closed on the same thread nest in the resulting timeline.
+ */
+final class Tracer
+{
+  private static final int PID = 1;
+  @Nullable
+  private static volatile Tracer c_tracer;
+  private final long _origin = System.nanoTime();
+  @Nonnull
+  private final Queue<Event> _events = new ConcurrentLinkedQueue<>();
+  @Nonnull
+  private final Map<Long, String> _threadNames = new ConcurrentHashMap<>();
+
+  /**
+   * Install the tracer that records spans for the process.
+   */
+  static void install( @Nullable final Tracer tracer )
+  {
+    c_tracer = tracer;
+  }
+
+  static boolean isEnabled()
+  {
+    return null != c_tracer;
+  }
+
+  /**
+   * Run the action on the current thread, recording it as a span if a tracer is installed.
+   */
+  static <E extends Throwable> void run( @Nonnull final String category,
+                                         @Nonnull final String name,
+                                         @Nullable final String item,
+                                         @Nonnull final Action<E> action )
+    throws E
+  {
+    call( category, name, item, () -> {
+      action.run();
+      return null;
+    } );
+  }
+
+  /**
+   * Invoke the function on the current thread, recording it as a span if a tracer is installed.
+   */
+  static <T, E extends Throwable> T call( @Nonnull final String category,
+                                          @Nonnull final String name,
+                                          @Nullable final String item,
+                                          @Nonnull final Function<T, E> function )
+    throws E
+  {
+    final Tracer tracer = c_tracer;
+    if ( null == tracer )
+    {
+      return function.call();
+    }
+    final Thread thread = Thread.currentThread();
+    tracer._threadNames.putIfAbsent( thread.getId(), thread.getName() );
+    final long start = System.nanoTime();
+    try
+    {
+      return function.call();
+    }
+    finally
+    {
+      tracer._events.add( new Event( category, name, item, thread.getId(), start, System.nanoTime() ) );
+    }
+  }
+
+  /**
+   * Wrap the soap port so that every operation invoked is recorded as a span.
+   */
+  @SuppressWarnings( "unchecked" )
+  @Nonnull
+  static <T> T traceSoap( @Nonnull final Class<T> type, @Nonnull final T port )
+  {
+    final Class<?>[] interfaces =
+      port instanceof BindingProvider ? new Class<?>[]{ type, BindingProvider.class } : new Class<?>[]{ type };
+    final InvocationHandler handler = ( proxy, method, args ) -> {
+      if ( !isSoapOperation( type, method ) )
+      {
+        return invoke( port, method, args );
+      }
+      return call( "soap", method.getName(), toItem( method, args ), () -> invoke( port, method, args ) );
+    };
+    return (T) Proxy.newProxyInstance( type.getClassLoader(), interfaces, handler );
+  }
+
+  /**
+   * Return the path of the item that the operation acts upon. Operations that create an item are passed
+   * the name of the item and the path of the parent so these are joined to produce the full path.
+   */
+  @Nullable
+  private static String toItem( @Nonnull final Method method, final Object[] args )
+  {
+    if ( null == args || 0 == args.length || !( args[ 0 ] instanceof String ) )
+    {
+      return null;
+    }
+    final String name = (String) args[ 0 ];
+    if ( args.length > 1 && args[ 1 ] instanceof String && "Parent".equals( getParameterName( method, 1 ) ) )
+    {
+      final String parent = (String) args[ 1 ];
+      return parent.endsWith( "/" ) ? parent + name : parent + "/" + name;
+    }
+    return name;
+  }
+
+  @Nullable
+  private static String getParameterName( @Nonnull final Method method, final int index )
+  {
+    for ( final Annotation annotation : method.getParameterAnnotations()[ index ] )
+    {
+      if ( annotation instanceof WebParam )
+      {
+        return ( (WebParam) annotation ).name();
+      }
+    }
+    return null;
+  }
+
+  private static Object invoke( @Nonnull final Object target, @Nonnull final Method method, final Object[] args )
+    throws Throwable
+  {
+    try
+    {
+      return method.invoke( target, args );
+    }
+    catch ( final InvocationTargetException ite )
+    {
+      throw ite.getCause();
+    }
+  }
+
+  private static boolean isSoapOperation( @Nonnull final Class<?> type, @Nonnull final Method method )
+  {
+    return method.getDeclaringClass() == type;
+  }
+
+  /**
+   * Write the recorded spans to the specified file.
+   */
+  void write( @Nonnull final File file )
+    throws IOException
+  {
+    try ( final OutputStream outputStream = new FileOutputStream( file ) )
+    {
+      final JsonGenerator g = Json.createGenerator( outputStream );
+      g.writeStartObject();
+      g.write( "displayTimeUnit", "ms" );
+      g.writeStartArray( "traceEvents" );
+      for ( final Map.Entry<Long, String> entry : _threadNames.entrySet() )
+      {
+        g.writeStartObject()
+          .write( "name", "thread_name" )
+          .write( "ph", "M" )
+          .write( "pid", PID )
+          .write( "tid", entry.getKey() )
+          .writeStartObject( "args" )
+          .write( "name", entry.getValue() )
+          .writeEnd()
+          .writeEnd();
+      }
+      for ( final Event event : _events )
+      {
+        g.writeStartObject()
+          .write( "name", event._name )
+          .write( "cat", event._category )
+          .write( "ph", "X" )
+          .write( "pid", PID )
+          .write( "tid", event._threadId )
+          .write( "ts", toMicros( event._start ) )
+          .write( "dur", ( event._end - event._start ) / 1000D );
+        if ( null != event._item )
+        {
+          g.writeStartObject( "args" ).write( "item", event._item ).writeEnd();
+        }
+        g.writeEnd();
+      }
+      g.writeEnd();
+      g.writeEnd();
+      g.close();
+    }
+  }
+
+  private double toMicros( final long nanoTime )
+  {
+    return ( nanoTime - _origin ) / 1000D;
+  }
+
+  @FunctionalInterface
+  interface Action<E extends Throwable>
+  {
+    void run()
+      throws E;
+  }
+
+  @FunctionalInterface
+  interface Function<T, E extends Throwable>
+  {
+    T call()
+      throws E;
+  }
+
+  private static final class Event
+  {
+    @Nonnull
+    private final String _category;
+    @Nonnull
+    private final String _name;
+    @Nullable
+    private final String _item;
+    private final long _threadId;
+    private final long _start;
+    private final long _end;
+
+    Event( @Nonnull final String category,
+           @Nonnull final String name,
+           @Nullable final String item,
+           final long threadId,
+           final long start,
+           final long end )
+    {
+      _category = category;
+      _name = name;
+      _item = item;
+      _threadId = threadId;
+      _start = start;
+      _end = end;
+    }
+  }
+}
@@ -2,76 +2,351 @@ package org.realityforge.sqlserver.ssrs;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import org.realityforge.sqlserver.ssrs.reportingservice2005.ItemTypeEnum;
 
 final class Uploader
 {
+  private static final String STAGING_SUFFIX = "__staging";
+  private static final String RETIRED_SUFFIX = "__retired";
+  @Nonnull
+  private final URL _endpoint;
+  @Nonnull
+  private final String _uploadPrefix;
+  @Nullable
+  private final NTLMAuthenticator _authenticator;
+  private final boolean _mtomResources;
   @Nonnull
   private final SSRS _ssrs;
+  @Nullable
+  private Thread _cleanup;
 
   Uploader( @Nonnull final String reportTarget,
             @Nonnull final String uploadPrefix,
             @Nullable final String domain,
             @Nullable final String username,
-            @Nullable final String password )
+            @Nullable final String password,
+            final boolean mtomResources )
     throws MalformedURLException
   {
-    if ( null != username )
+    this( new URL( Objects.requireNonNull( reportTarget ) + "/ReportService2005.asmx" ),
+          Objects.requireNonNull( uploadPrefix ),
+          null != username ?
+          new NTLMAuthenticator( Objects.requireNonNull( domain ), username, Objects.requireNonNull( password ) ) :
+          null,
+          mtomResources );
+  }
+
+  private Uploader( @Nonnull final URL endpoint,
+                    @Nonnull final String uploadPrefix,
+                    @Nullable final NTLMAuthenticator authenticator,
+                    final boolean mtomResources )
+  {
+    _endpoint = endpoint;
+    _uploadPrefix = uploadPrefix;
+    _authenticator = authenticator;
+    _mtomResources = mtomResources;
+    _ssrs = SSRS.forEndpoint( endpoint, uploadPrefix, authenticator );
+    _ssrs.setMtomResources( mtomResources );
+  }
+
+  @Nonnull
+  SSRS getSSRS()
+  {
+    return _ssrs;
+  }
+
+  /**
+   * Upload the configuration into a staging folder next to the upload prefix, warm the staged reports
+   * and, once every upload has succeeded, swap the staging folder into place using MoveItem operations.
+   * Users observe the previous tree until the swap and the new tree afterwards. The previous tree is
+   * deleted in the background and {@link #awaitCleanup()} must be invoked before exiting.
+   *
+   * <p>The whole folder at the upload prefix is replaced. Items in the previous tree that are not
+   * part of the configuration are not carried over. Security policies explicitly assigned to the folder
+   * at the upload prefix are copied to the staging folder before the swap but policies assigned to items
+   * within the previous tree are not.</p>
+   *
+   * <p>Reports must reference shared data sources using paths relative to the report as the whole
+   * tree is relocated by the swap.</p>
+   */
+  void uploadBlueGreen( @Nonnull final DataSource[] dataSources,
+                        @Nonnull final Report[] reports,
+                        @Nullable final Resource[] resources,
+                        final int warmupConcurrency )
+    throws InterruptedException
+  {
+    final String live = "/" + _uploadPrefix.replaceAll( "^/+|/+$", "" );
+    if ( "/".equals( live ) )
     {
-      NTLMAuthenticator.install( Objects.requireNonNull( domain ),
-                                 Objects.requireNonNull( username ),
-                                 Objects.requireNonNull( password ) );
+      throw new IllegalStateException( "Blue/green upload requires a non-empty upload prefix" );
     }
+    final String staging = live + STAGING_SUFFIX;
+    final String retired = live + RETIRED_SUFFIX;
+    final SSRS root = SSRS.forEndpoint( _endpoint, "", _authenticator );
+
+    final Uploader uploader = new Uploader( _endpoint, staging, _authenticator, _mtomResources );
+    Tracer.run( "uploader", "uploadStaging", staging, () -> {
+      // An earlier deploy that failed between moving the live tree aside and moving the staging tree
+      // into place leaves the only copy of the previous tree in the retired folder so restore it.
+      if ( ItemTypeEnum.UNKNOWN == root.getItemType( live ) && ItemTypeEnum.UNKNOWN != root.getItemType( retired ) )
+      {
+        SSRS.warning( "Found " + retired + " without " + live + " left by an incomplete deploy. " +
+                      "Restoring previous tree." );
+        root.moveItem( retired, live );
+      }
+      // Remove any trees left behind by an earlier deploy that did not complete
+      root.delete( staging );
+      root.delete( retired );
+
+      uploader._ssrs.mkdir( "" );
+      uploader.uploadDataSources( dataSources );
+      uploader.uploadReports( reports );
+      if ( null != resources )
+      {
+        uploader.uploadResources( resources );
+      }
+    } );
+    // Execution snapshots move with the reports so warm them before users can observe them
+    uploader.warmReports( reports, warmupConcurrency );
 
-    _ssrs = new SSRS( new URL( Objects.requireNonNull( reportTarget ) + "/ReportService2005.asmx" ),
-                      Objects.requireNonNull( uploadPrefix ) );
+    Tracer.run( "uploader", "swap", live, () -> {
+      final boolean liveExists = ItemTypeEnum.UNKNOWN != root.getItemType( live );
+      if ( liveExists )
+      {
+        root.copyPolicies( live, staging );
+        root.moveItem( live, retired );
+      }
+      try
+      {
+        root.moveItem( staging, live );
+      }
+      catch ( final RuntimeException e )
+      {
+        if ( liveExists )
+        {
+          SSRS.warning( "Failed to move " + staging + " to " + live + ". Restoring previous tree." );
+          try
+          {
+            root.moveItem( retired, live );
+          }
+          catch ( final RuntimeException re )
+          {
+            final IllegalStateException ise =
+              new IllegalStateException( "Failed to move " + staging + " to " + live + " and failed to restore " +
+                                         "the previous tree which is left at " + retired, e );
+            ise.addSuppressed( re );
+            throw ise;
+          }
+        }
+        throw e;
+      }
+    } );
+
+    final Thread cleanup = new Thread( () -> {
+      try
+      {
+        Tracer.run( "uploader", "deleteRetired", retired, () -> root.delete( retired ) );
+      }
+      catch ( final RuntimeException e )
+      {
+        SSRS.warning( "Failed to delete retired tree " + retired + ": " + e );
+      }
+    }, "ssrs-cleanup" );
+    cleanup.start();
+    _cleanup = cleanup;
+  }
+
+  /**
+   * Wait for any background cleanup started by an earlier upload to complete.
+   */
+  void awaitCleanup()
+    throws InterruptedException
+  {
+    if ( null != _cleanup )
+    {
+      _cleanup.join();
+      _cleanup = null;
+    }
   }
 
   void uploadReports( @Nonnull final Report[] reports )
   {
-    deleteReports( reports );
-    for ( final Report report : reports )
+    Tracer.run( "uploader", "uploadReports", null, () -> {
+      deleteReports( reports );
+      for ( final Report report : reports )
+      {
+        Tracer.run( "uploader", "uploadReport", report.name, () -> {
+          createParentDirectory( report.name );
+          _ssrs.createReport( report.name, report.filename );
+        } );
+      }
+    } );
+  }
+
+  /**
+   * Warm the reports that specify a warmup strategy so that snapshots are generated before users
+   * arrive. At most <code>concurrency</code> reports are warmed at any one time. Warming is an optional
+   * stage so a report that fails to warm is restored to live execution and a warning is logged. The
+   * upload only fails if a report could not be restored and would be left rendering from a snapshot
+   * that does not exist.
+   */
+  void warmReports( @Nonnull final Report[] reports, final int concurrency )
+    throws InterruptedException
+  {
+    final List<Report> toWarm =
+      Stream.of( reports ).filter( r -> null != r.warmup ).collect( Collectors.toList() );
+    if ( toWarm.isEmpty() )
+    {
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool( Math.min( concurrency, toWarm.size() ) );
+    try
     {
-      createParentDirectory( report.name );
-      _ssrs.createReport( report.name, report.filename );
+      Tracer.run( "uploader", "warmReports", null, () -> awaitWarmup( executor, toWarm ) );
+    }
+    finally
+    {
+      executor.shutdownNow();
     }
   }
 
+  private void awaitWarmup( @Nonnull final ExecutorService executor, @Nonnull final List<Report> toWarm )
+    throws InterruptedException
+  {
+    final List<Future<Boolean>> futures = new ArrayList<>();
+    for ( final Report report : toWarm )
+    {
+      futures.add( executor.submit( () -> warmReport( report ) ) );
+    }
+    final List<String> cold = new ArrayList<>();
+    final List<String> broken = new ArrayList<>();
+    for ( int i = 0; i < futures.size(); i++ )
+    {
+      try
+      {
+        if ( !futures.get( i ).get() )
+        {
+          cold.add( toWarm.get( i ).name );
+        }
+      }
+      catch ( final ExecutionException ee )
+      {
+        SSRS.warning( "Failed to restore report " + toWarm.get( i ).name + " to live execution: " + ee.getCause() );
+        broken.add( toWarm.get( i ).name );
+      }
+    }
+    if ( !cold.isEmpty() )
+    {
+      SSRS.warning( "Uploaded reports were not warmed and were restored to render live: " + cold );
+    }
+    if ( !broken.isEmpty() )
+    {
+      throw new IllegalStateException( "Uploaded reports failed to warm and are left rendering from an execution " +
+                                       "snapshot that does not exist: " + broken );
+    }
+  }
+
+  /**
+   * Warm the report, returning false if warming failed and the report was restored to live execution.
+   */
+  private boolean warmReport( @Nonnull final Report report )
+  {
+    final long start = System.nanoTime();
+    try
+    {
+      Tracer.run( "uploader", "warmReport", report.name, () -> {
+        // The report was recreated by the upload and renders live so it must be switched to
+        // render from an execution snapshot before the snapshot is of any use to viewers.
+        _ssrs.setSnapshotExecution( report.name );
+        _ssrs.updateReportExecutionSnapshot( report.name );
+      } );
+    }
+    catch ( final RuntimeException e )
+    {
+      SSRS.warning( "Failed to warm report " + report.name + ": " + e );
+      // Viewers receive an error if the report renders from a snapshot that was never generated
+      Tracer.run( "uploader", "restoreLiveExecution", report.name, () -> _ssrs.setLiveExecution( report.name ) );
+      return false;
+    }
+    final long duration = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    SSRS.info( "Warmed Report " + report.name + " using " + report.warmup + " in " + duration + "ms" );
+    return true;
+  }
+
   private void createParentDirectory( @Nonnull final String itemName )
   {
     final String directory = itemName.replaceAll( "/[^/]*$", "" );
     if ( !directory.equals( itemName ) )
     {
-      _ssrs.mkdir( directory );
+      Tracer.run( "uploader", "mkdir", directory, () -> _ssrs.mkdir( directory ) );
     }
   }
 
   void deleteReports( @Nonnull final Report[] reports )
   {
-    extractTopLevelDirectories( reports ).forEach( _ssrs::delete );
+    Tracer.run( "uploader",
+                "deleteReports",
+                null,
+                () -> extractTopLevelDirectories( reports ).forEach( _ssrs::delete ) );
   }
 
   void uploadDataSources( @Nonnull final DataSource[] dataSources )
   {
-    for ( final DataSource dataSource : dataSources )
-    {
-      createParentDirectory( dataSource.name );
-      _ssrs.delete( dataSource.name );
-      _ssrs.createSQLDataSource( dataSource.name, dataSource.connectionString );
-    }
+    Tracer.run( "uploader", "uploadDataSources", null, () -> {
+      for ( final DataSource dataSource : dataSources )
+      {
+        Tracer.run( "uploader", "uploadDataSource", dataSource.name, () -> {
+          createParentDirectory( dataSource.name );
+          _ssrs.delete( dataSource.name );
+          _ssrs.createSQLDataSource( dataSource.name, dataSource.connectionString );
+        } );
+      }
+    } );
+  }
+
+  void uploadResources( @Nonnull final Resource[] resources )
+  {
+    Tracer.run( "uploader", "uploadResources", null, () -> {
+      for ( final Resource resource : resources )
+      {
+        Tracer.run( "uploader", "uploadResource", resource.name, () -> {
+          createParentDirectory( resource.name );
+          _ssrs.uploadResource( resource.name, resource.filename, resource.mimeType );
+        } );
+      }
+    } );
+  }
+
+  void deleteResources( @Nonnull final Resource[] resources )
+  {
+    Tracer.run( "uploader", "deleteResources", null, () -> {
+      for ( final Resource resource : resources )
+      {
+        _ssrs.delete( resource.name );
+      }
+    } );
   }
 
   void deleteDataSources( @Nonnull final DataSource[] dataSources )
   {
-    for ( final DataSource dataSource : dataSources )
-    {
-      _ssrs.delete( dataSource.name );
-    }
+    Tracer.run( "uploader", "deleteDataSources", null, () -> {
+      for ( final DataSource dataSource : dataSources )
+      {
+        _ssrs.delete( dataSource.name );
+      }
+    } );
   }
 
   @Nonnull
@@ -0,0 +1,136 @@
+package org.realityforge.sqlserver.ssrs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * A minimal stand-in for the report server that answers every SOAP operation with a canned response.
+ * It does not retain any state: every item is reported as unknown and every folder as empty.
+ * Used to generate the class-data-sharing training run and to establish client side baselines.
+ * It is only present on the training classpath and is not packaged with the library.
+ */
+public final class StubServer
+{
+  private static final Logger LOG = Logger.getLogger( StubServer.class.getName() );
+  private static final String NAMESPACE =
+    "http://schemas.microsoft.com/sqlserver/2005/06/30/reporting/reportingservices";
+  private static final String ENDPOINT_PATH = "/ReportServer/ReportService2005.asmx";
+  private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+  @Nonnull
+  private final HttpServer _server;
+  @Nonnull
+  private final ExecutorService _executor;
+
+  private StubServer( @Nonnull final HttpServer server, @Nonnull final ExecutorService executor )
+  {
+    _server = server;
+    _executor = executor;
+  }
+
+  /**
+   * Start a stub listening on the loopback interface.
+   *
+   * @param port the port to listen on or 0 to select an ephemeral port.
+   */
+  @Nonnull
+  public static StubServer start( final int port )
+    throws IOException
+  {
+    // Responses are small and written separately from the headers so without TCP_NODELAY every
+    // keep-alive response waits on a delayed ACK and the stub measures that rather than the client.
+    // The property is read once when the first server is created.
+    if ( null == System.getProperty( NODELAY_PROPERTY ) )
+    {
+      System.setProperty( NODELAY_PROPERTY, "true" );
+    }
+    final HttpServer server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    server.setExecutor( executor );
+    server.createContext( ENDPOINT_PATH, StubServer::handle );
+    server.start();
+    return new StubServer( server, executor );
+  }
+
+  /**
+   * Return the value to pass as the report target when accessing the stub.
+   */
+  @Nonnull
+  public String getReportTarget()
+  {
+    return "http://localhost:" + _server.getAddress().getPort() + "/ReportServer";
+  }
+
+  public void stop()
+  {
+    _server.stop( 0 );
+    _executor.shutdownNow();
+  }
+
+  private static void handle( @Nonnull final HttpExchange exchange )
+    throws IOException
+  {
+    try ( final InputStream inputStream = exchange.getRequestBody() )
+    {
+      final byte[] buffer = new byte[ 8192 ];
+      //noinspection StatementWithEmptyBody
+      while ( -1 != inputStream.read( buffer ) )
+      {
+      }
+    }
+    final String soapAction = exchange.getRequestHeaders().getFirst( "SOAPAction" );
+    final String operation =
+      null == soapAction ? "" : soapAction.replace( "\"", "" ).replaceFirst( "^.*/", "" );
+    final byte[] response = envelope( operation, responseBody( operation ) ).getBytes( StandardCharsets.UTF_8 );
+    exchange.getResponseHeaders().add( "Content-Type", "text/xml; charset=utf-8" );
+    exchange.sendResponseHeaders( 200, response.length );
+    try ( final OutputStream outputStream = exchange.getResponseBody() )
+    {
+      outputStream.write( response );
+    }
+  }
+
+  @Nonnull
+  private static String responseBody( @Nonnull final String operation )
+  {
+    switch ( operation )
+    {
+      case "GetItemType":
+        return "<Type>Unknown</Type>";
+      case "ListChildren":
+        return "<CatalogItems/>";
+      case "GetProperties":
+        return "<Values/>";
+      case "GetReportDefinition":
+        return "<Definition>PFJlcG9ydC8+</Definition>";
+      default:
+        return "";
+    }
+  }
+
+  @Nonnull
+  private static String envelope( @Nonnull final String operation, @Nonnull final String body )
+  {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+           "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+           "<" + operation + "Response xmlns=\"" + NAMESPACE + "\">" + body + "</" + operation + "Response>" +
+           "</soap:Body></soap:Envelope>";
+  }
+
+  public static void main( @Nonnull final String[] args )
+    throws Exception
+  {
+    final StubServer server = start( args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 0 );
+    LOG.info( "Stub report server listening. Use --report-target " + server.getReportTarget() );
+  }
+}
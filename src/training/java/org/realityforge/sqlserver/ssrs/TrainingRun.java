@@ -0,0 +1,71 @@
+package org.realityforge.sqlserver.ssrs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.annotation.Nonnull;
+
+/**
+ * Exercises a representative upload against a {@link StubServer} so that the classes loaded by a
+ * typical invocation can be captured in a class-data-sharing archive. Invoked by the build.
+ */
+public final class TrainingRun
+{
+  private TrainingRun()
+  {
+  }
+
+  public static void main( @Nonnull final String[] args )
+    throws Exception
+  {
+    final File dir = Files.createTempDirectory( "ssrs-training" ).toFile();
+    final StubServer server = StubServer.start( 0 );
+    final int exitCode;
+    try
+    {
+      write( new File( dir, "Report.rdl" ), "<Report/>" );
+      write( new File( dir, "Logo.png" ), "PNG" );
+      final File config = new File( dir, "config.json" );
+      write( config,
+             "{" +
+             "\"dataSources\":[{\"name\":\"DataSources/Main\",\"connectionString\":\"Data Source=.\"}]," +
+             "\"reports\":[{\"name\":\"Reports/Report\",\"filename\":\"" + path( dir, "Report.rdl" ) + "\"," +
+             "\"warmup\":\"execution_snapshot\"}]," +
+             "\"resources\":[{\"name\":\"Reports/Logo\",\"filename\":\"" + path( dir, "Logo.png" ) + "\"," +
+             "\"mimeType\":\"image/png\"}]" +
+             "}" );
+      exitCode = Main.run( new String[]{ "--report-target",
+                                         server.getReportTarget(),
+                                         "--upload-prefix",
+                                         "/Training",
+                                         "--config-filename",
+                                         config.getAbsolutePath(),
+                                         "--trace-file",
+                                         new File( dir, "trace.json" ).getAbsolutePath(),
+                                         "upload" } );
+    }
+    finally
+    {
+      server.stop();
+      for ( final File file : dir.listFiles() )
+      {
+        Files.delete( file.toPath() );
+      }
+      Files.delete( dir.toPath() );
+    }
+    System.exit( exitCode );
+  }
+
+  @Nonnull
+  private static String path( @Nonnull final File dir, @Nonnull final String filename )
+  {
+    return new File( dir, filename ).getAbsolutePath().replace( "\\", "/" );
+  }
+
+  private static void write( @Nonnull final File file, @Nonnull final String content )
+    throws IOException
+  {
+    Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+  }
+}